@@ -1,7 +1,9 @@
+const fs = require('fs');
 const http = require('http');
 const { URL } = require('url');
 
 const PORT = process.env.PORT || 3001;
+const CONTACT_LOG_PATH = process.env.CONTACT_LOG_PATH || null;
 const ALLOWED_ORIGINS = process.env.ALLOWED_ORIGINS
   ? process.env.ALLOWED_ORIGINS.split(',').map((origin) => origin.trim())
   : ['*'];
@@ -42,6 +44,102 @@ const products = [
   },
 ];
 
+const productsById = new Map(products.map((product) => [product.id, product]));
+
+function foldText(value) {
+  return String(value)
+    .normalize('NFD')
+    .replace(/[\u0300-\u036f]/g, '')
+    .toLowerCase();
+}
+
+function tokenize(value) {
+  return foldText(value).split(/[^a-z0-9]+/).filter(Boolean);
+}
+
+function buildSearchIndex(items) {
+  const index = new Map();
+  items.forEach((item) => {
+    const weights = new Map();
+    tokenize(item.name).forEach((token) => weights.set(token, 2));
+    tokenize(item.description).forEach((token) => {
+      if (!weights.has(token)) weights.set(token, 1);
+    });
+    weights.forEach((weight, token) => {
+      if (!index.has(token)) index.set(token, []);
+      index.get(token).push({ id: item.id, weight });
+    });
+  });
+  return { tokens: [...index.keys()].sort(), postings: index };
+}
+
+const searchIndex = buildSearchIndex(products);
+
+function lowerBound(sorted, value) {
+  let low = 0;
+  let high = sorted.length;
+  while (low < high) {
+    const mid = (low + high) >>> 1;
+    if (sorted[mid] < value) low = mid + 1;
+    else high = mid;
+  }
+  return low;
+}
+
+function searchProducts(query) {
+  const terms = tokenize(query);
+  if (!terms.length) return null;
+
+  let scores = null;
+  for (const term of terms) {
+    const termScores = new Map();
+    for (let i = lowerBound(searchIndex.tokens, term); i < searchIndex.tokens.length; i += 1) {
+      const token = searchIndex.tokens[i];
+      if (!token.startsWith(term)) break;
+      searchIndex.postings.get(token).forEach(({ id, weight }) => {
+        termScores.set(id, Math.max(termScores.get(id) || 0, weight));
+      });
+    }
+
+    if (scores === null) {
+      scores = termScores;
+    } else {
+      const previous = scores;
+      scores = new Map();
+      previous.forEach((score, id) => {
+        if (termScores.has(id)) scores.set(id, score + termScores.get(id));
+      });
+    }
+    if (!scores.size) break;
+  }
+
+  return scores;
+}
+
+function computeInsights(items) {
+  let totalInventory = 0;
+  let totalNicotineMg = 0;
+  let topSeller = null;
+  const inventoryByStrength = {};
+
+  items.forEach((product) => {
+    totalInventory += product.inventory;
+    totalNicotineMg += product.nicotineMg;
+    inventoryByStrength[product.strength] =
+      (inventoryByStrength[product.strength] || 0) + product.inventory;
+    if (!topSeller || product.inventory >= topSeller.inventory) topSeller = product;
+  });
+
+  return {
+    totalInventory,
+    averageStrengthMg: Math.round(totalNicotineMg / items.length),
+    topSeller,
+    inventoryByStrength,
+  };
+}
+
+const insights = computeInsights(products);
+
 const story = {
   headline: 'Experiências refinadas de nicotina para o cotidiano urbano.',
   mission:
@@ -55,6 +153,127 @@ const story = {
 
 const contactMessages = [];
 
+function replayContactLog(path) {
+  if (!fs.existsSync(path)) return [];
+
+  const content = fs.readFileSync(path);
+  const complete = content.lastIndexOf(0x0a) + 1;
+  const lines = content.subarray(0, complete).toString('utf8').split('\n');
+
+  // Sem '\n' final a última linha pode ser um registro completo ao qual só faltou a quebra de linha,
+  // ou um fragmento de uma gravação interrompida. O primeiro é mantido; o segundo é cortado para que
+  // o próximo registro não seja anexado a ele.
+  if (complete < content.length) {
+    const tail = content.subarray(complete).toString('utf8');
+    try {
+      JSON.parse(tail);
+      lines.push(tail);
+      fs.appendFileSync(path, '\n');
+    } catch (error) {
+      console.warn('Linha incompleta descartada do final do log de contatos');
+      fs.truncateSync(path, complete);
+    }
+  }
+
+  const records = [];
+  lines.filter(Boolean).forEach((line) => {
+    try {
+      records.push(JSON.parse(line));
+    } catch (error) {
+      console.warn('Linha inválida ignorada no log de contatos');
+    }
+  });
+  return records;
+}
+
+const LATENCY_BUCKETS_SECONDS = [0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1];
+const KNOWN_ROUTES = ['/api/products', '/api/story', '/api/insights', '/api/contact', '/api/metrics'];
+const requestMetrics = new Map();
+
+function routeLabel(pathname) {
+  if (KNOWN_ROUTES.includes(pathname)) return pathname;
+  if (pathname.startsWith('/api/products/')) return '/api/products/:id';
+  return 'other';
+}
+
+// Mapa aninhado por método e rota: registrar uma requisição já conhecida não monta chaves nem objetos.
+function recordRequest(method, route, status, startedAt) {
+  const elapsedSeconds = (performance.now() - startedAt) / 1000;
+  let byRoute = requestMetrics.get(method);
+  if (!byRoute) {
+    byRoute = new Map();
+    requestMetrics.set(method, byRoute);
+  }
+  let entry = byRoute.get(route);
+  if (!entry) {
+    entry = {
+      count: 0,
+      sumSeconds: 0,
+      buckets: new Array(LATENCY_BUCKETS_SECONDS.length).fill(0),
+      statuses: new Map(),
+    };
+    byRoute.set(route, entry);
+  }
+
+  entry.count += 1;
+  entry.sumSeconds += elapsedSeconds;
+  for (let i = 0; i < LATENCY_BUCKETS_SECONDS.length; i += 1) {
+    if (elapsedSeconds <= LATENCY_BUCKETS_SECONDS[i]) {
+      entry.buckets[i] += 1;
+      break;
+    }
+  }
+  entry.statuses.set(status, (entry.statuses.get(status) || 0) + 1);
+}
+
+function forEachMetric(callback) {
+  requestMetrics.forEach((byRoute, method) => {
+    byRoute.forEach((entry, route) => callback(method, route, entry));
+  });
+}
+
+function renderMetrics() {
+  const lines = [
+    '# HELP nyx_http_requests_total Requisições atendidas por rota e status.',
+    '# TYPE nyx_http_requests_total counter',
+  ];
+  forEachMetric((method, route, { statuses }) => {
+    statuses.forEach((count, status) => {
+      lines.push(
+        `nyx_http_requests_total{method="${method}",route="${route}",status="${status}"} ${count}`
+      );
+    });
+  });
+
+  lines.push(
+    '# HELP nyx_http_request_duration_seconds Latência das requisições em segundos.',
+    '# TYPE nyx_http_request_duration_seconds histogram'
+  );
+  forEachMetric((method, route, { count, sumSeconds, buckets }) => {
+    const labels = `method="${method}",route="${route}"`;
+    let cumulative = 0;
+    LATENCY_BUCKETS_SECONDS.forEach((bound, i) => {
+      cumulative += buckets[i];
+      lines.push(`nyx_http_request_duration_seconds_bucket{${labels},le="${bound}"} ${cumulative}`);
+    });
+    lines.push(`nyx_http_request_duration_seconds_bucket{${labels},le="+Inf"} ${count}`);
+    lines.push(`nyx_http_request_duration_seconds_sum{${labels}} ${sumSeconds}`);
+    lines.push(`nyx_http_request_duration_seconds_count{${labels}} ${count}`);
+  });
+
+  return `${lines.join('\n')}\n`;
+}
+
+let contactLog = null;
+if (CONTACT_LOG_PATH) {
+  contactMessages.push(...replayContactLog(CONTACT_LOG_PATH));
+  contactLog = fs.createWriteStream(CONTACT_LOG_PATH, { flags: 'a' });
+  contactLog.on('error', (error) => console.error('Falha ao gravar log de contatos', error));
+}
+
+const MAX_PAGE_LIMIT = 100;
+const PRODUCT_FIELDS = Object.keys(products[0]);
+
 function buildResponseHeaders(origin) {
   if (ALLOWED_ORIGINS.includes('*')) {
     return {
@@ -111,6 +330,14 @@ function parseBody(req) {
 function filterProducts(url) {
   const searchParams = url.searchParams;
   let filtered = [...products];
+  let scores = null;
+
+  if (searchParams.has('q')) {
+    scores = searchProducts(searchParams.get('q'));
+    if (scores) filtered = filtered.filter((product) => scores.has(product.id));
+  }
+  // Mesma ordem da paginação (id, ou relevância e id com q), para que paginar não mude a sequência.
+  filtered.sort((a, b) => compareRank(rankKey(a, scores), rankKey(b, scores)));
 
   if (searchParams.has('strength')) {
     const strength = searchParams.get('strength').toLowerCase();
@@ -118,8 +345,8 @@ function filterProducts(url) {
   }
 
   if (searchParams.has('flavor')) {
-    const flavor = searchParams.get('flavor').toLowerCase();
-    filtered = filtered.filter((product) => product.flavor.toLowerCase().includes(flavor));
+    const flavor = foldText(searchParams.get('flavor'));
+    filtered = filtered.filter((product) => foldText(product.flavor).includes(flavor));
   }
 
   if (searchParams.has('maxNicotine')) {
@@ -129,12 +356,127 @@ function filterProducts(url) {
     }
   }
 
-  return filtered;
+  return { items: filtered, scores };
+}
+
+function parsePagination(url) {
+  const searchParams = url.searchParams;
+  if (!searchParams.has('limit') && !searchParams.has('after')) {
+    return null;
+  }
+
+  const limit = Number(searchParams.get('limit') || MAX_PAGE_LIMIT);
+  if (!Number.isInteger(limit) || limit < 1) {
+    throw new Error('Parâmetro limit deve ser um inteiro positivo.');
+  }
+
+  return {
+    limit: Math.min(limit, MAX_PAGE_LIMIT),
+    after: searchParams.get('after') || null,
+  };
+}
+
+function rankKey(item, scores) {
+  return { id: item.id, score: scores ? scores.get(item.id) : 0 };
+}
+
+function compareRank(a, b) {
+  return b.score - a.score || (a.id < b.id ? -1 : a.id > b.id ? 1 : 0);
+}
+
+function encodeCursor(key, scores) {
+  return scores ? `${key.score}:${key.id}` : key.id;
+}
+
+function decodeCursor(cursor, scores) {
+  if (!scores) return { id: cursor, score: 0 };
+
+  const separator = cursor.indexOf(':');
+  const score = Number(cursor.slice(0, separator));
+  if (separator < 1 || !Number.isFinite(score)) {
+    throw new Error('Parâmetro after inválido para uma busca com q.');
+  }
+  return { id: cursor.slice(separator + 1), score };
+}
+
+// Sem busca textual a ordem é por id; com q, por relevância e depois id, e o cursor carrega os dois.
+function paginate(items, { limit, after }, scores = null) {
+  const ordered = [...items].sort((a, b) => compareRank(rankKey(a, scores), rankKey(b, scores)));
+  const cursor = after ? decodeCursor(after, scores) : null;
+  const start = cursor
+    ? ordered.findIndex((item) => compareRank(rankKey(item, scores), cursor) > 0)
+    : 0;
+  const page = start === -1 ? [] : ordered.slice(start, start + limit);
+  const hasMore = start !== -1 && start + limit < ordered.length;
+
+  return {
+    page,
+    nextCursor: hasMore ? encodeCursor(rankKey(page[page.length - 1], scores), scores) : null,
+  };
+}
+
+function parseFields(url) {
+  if (!url.searchParams.has('fields')) return null;
+
+  const fields = url.searchParams
+    .get('fields')
+    .split(',')
+    .map((field) => field.trim())
+    .filter(Boolean);
+  if (!fields.length) {
+    throw new Error('Parâmetro fields deve listar ao menos um campo.');
+  }
+  const unknown = fields.filter((field) => !PRODUCT_FIELDS.includes(field));
+  if (unknown.length) {
+    throw new Error(`Campos desconhecidos em fields: ${unknown.join(', ')}.`);
+  }
+
+  return fields.includes('id') ? fields : ['id', ...fields];
+}
+
+function pickFields(item, fields) {
+  const projected = {};
+  fields.forEach((field) => {
+    projected[field] = item[field];
+  });
+  return projected;
+}
+
+function wantsNdjson(req, url) {
+  return (
+    url.searchParams.get('format') === 'ndjson' ||
+    (req.headers.accept || '').includes('application/x-ndjson')
+  );
+}
+
+// O corpo NDJSON só traz itens; total e próximo cursor seguem em cabeçalhos. X-Next-Cursor
+// ausente indica que não há mais páginas.
+function streamNdjson(res, items, { total, nextCursor }, origin = '*') {
+  const headers = {
+    ...buildResponseHeaders(origin),
+    'Content-Type': 'application/x-ndjson; charset=utf-8',
+    'Access-Control-Expose-Headers': 'X-Total-Count, X-Next-Cursor',
+    'X-Total-Count': String(total),
+  };
+  if (nextCursor) headers['X-Next-Cursor'] = nextCursor;
+  res.writeHead(200, headers);
+  items.forEach((item) => res.write(`${JSON.stringify(item)}\n`));
+  res.end();
 }
 
 const server = http.createServer(async (req, res) => {
+  const startedAt = performance.now();
   const origin = req.headers.origin || '*';
 
+  let requestUrl = null;
+  try {
+    requestUrl = new URL(req.url, `http://${req.headers.host}`);
+  } catch (error) {
+    // Host ou caminho malformado: a requisição é contada como "other" e recusada abaixo.
+  }
+  const route = requestUrl ? routeLabel(requestUrl.pathname) : 'other';
+  res.on('finish', () => recordRequest(req.method, route, res.statusCode, startedAt));
+
   if (req.method === 'OPTIONS') {
     const headers = buildResponseHeaders(origin);
     res.writeHead(204, headers);
@@ -142,17 +484,48 @@ const server = http.createServer(async (req, res) => {
     return;
   }
 
-  const requestUrl = new URL(req.url, `http://${req.headers.host}`);
+  if (!requestUrl) {
+    sendJson(res, 400, { error: 'URL da requisição inválida' }, origin);
+    return;
+  }
+
+  if (req.method === 'GET' && requestUrl.pathname === '/api/metrics') {
+    res.writeHead(200, {
+      ...buildResponseHeaders(origin),
+      'Content-Type': 'text/plain; version=0.0.4; charset=utf-8',
+    });
+    res.end(renderMetrics());
+    return;
+  }
 
   if (req.method === 'GET' && requestUrl.pathname === '/api/products') {
-    const response = filterProducts(requestUrl);
-    sendJson(res, 200, { data: response, total: response.length }, origin);
+    const { items: response, scores } = filterProducts(requestUrl);
+
+    let fields;
+    let page = response;
+    let nextCursor;
+    try {
+      const pagination = parsePagination(requestUrl);
+      fields = parseFields(requestUrl);
+      if (pagination) ({ page, nextCursor } = paginate(response, pagination, scores));
+    } catch (error) {
+      sendJson(res, 400, { error: error.message }, origin);
+      return;
+    }
+
+    const data = fields ? page.map((product) => pickFields(product, fields)) : page;
+
+    if (wantsNdjson(req, requestUrl)) {
+      streamNdjson(res, data, { total: response.length, nextCursor }, origin);
+      return;
+    }
+    sendJson(res, 200, { data, total: response.length, nextCursor }, origin);
     return;
   }
 
   if (req.method === 'GET' && requestUrl.pathname.startsWith('/api/products/')) {
     const productId = requestUrl.pathname.replace('/api/products/', '');
-    const product = products.find((item) => item.id === productId);
+    const product = productsById.get(productId);
 
     if (!product) {
       sendJson(res, 404, { error: 'Produto não encontrado' }, origin);
@@ -169,16 +542,6 @@ const server = http.createServer(async (req, res) => {
   }
 
   if (req.method === 'GET' && requestUrl.pathname === '/api/insights') {
-    const insights = {
-      totalInventory: products.reduce((sum, product) => sum + product.inventory, 0),
-      averageStrengthMg: Math.round(
-        products.reduce((sum, product) => sum + product.nicotineMg, 0) / products.length
-      ),
-      topSeller: products.reduce((prev, current) =>
-        prev.inventory > current.inventory ? prev : current
-      ),
-    };
-
     sendJson(res, 200, { data: insights }, origin);
     return;
   }
@@ -206,6 +569,7 @@ const server = http.createServer(async (req, res) => {
         receivedAt: new Date().toISOString(),
       };
       contactMessages.push(record);
+      if (contactLog) contactLog.write(`${JSON.stringify(record)}\n`);
 
       sendJson(res, 201, { data: record, message: 'Contato registrado com sucesso.' }, origin);
     } catch (error) {
@@ -223,4 +587,14 @@ if (require.main === module) {
   });
 }
 
-module.exports = { server, products, story, contactMessages };
+module.exports = {
+  server,
+  products,
+  story,
+  contactMessages,
+  replayContactLog,
+  parsePagination,
+  paginate,
+  parseFields,
+  searchProducts,
+};
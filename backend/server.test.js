@@ -0,0 +1,380 @@
+const test = require('node:test');
+const assert = require('node:assert/strict');
+
+const {
+  server,
+  products,
+  replayContactLog,
+  parsePagination,
+  paginate,
+  parseFields,
+  searchProducts,
+} = require('./server');
+
+function urlWith(query) {
+  return new URL(`http://localhost/api/products${query}`);
+}
+
+test.describe('paginação por cursor', () => {
+  test('sem limit nem after não pagina', () => {
+    assert.equal(parsePagination(urlWith('')), null);
+  });
+
+  test('limit inválido é rejeitado', () => {
+    ['?limit=0', '?limit=-1', '?limit=1.5', '?limit=abc'].forEach((query) => {
+      assert.throws(() => parsePagination(urlWith(query)), /limit/);
+    });
+  });
+
+  test('limit acima do máximo é limitado a 100', () => {
+    assert.equal(parsePagination(urlWith('?limit=500')).limit, 100);
+  });
+
+  test('última página devolve nextCursor nulo', () => {
+    const first = paginate(products, { limit: 2, after: null });
+    assert.deepEqual(
+      first.page.map((product) => product.id),
+      ['aurora-mint-6mg', 'lunar-berry-12mg']
+    );
+    assert.equal(first.nextCursor, 'lunar-berry-12mg');
+
+    const last = paginate(products, { limit: 2, after: first.nextCursor });
+    assert.deepEqual(last.page.map((product) => product.id), ['solar-citrus-18mg']);
+    assert.equal(last.nextCursor, null);
+  });
+
+  test('after desconhecido continua a partir da posição do id na ordenação', () => {
+    const { page } = paginate(products, { limit: 10, after: 'b' });
+    assert.deepEqual(
+      page.map((product) => product.id),
+      ['lunar-berry-12mg', 'solar-citrus-18mg']
+    );
+
+    const beyond = paginate(products, { limit: 10, after: 'zzz' });
+    assert.deepEqual(beyond, { page: [], nextCursor: null });
+  });
+});
+
+test.describe('GET /api/products', () => {
+  let baseUrl;
+
+  test.before(async () => {
+    await new Promise((resolve) => server.listen(0, resolve));
+    baseUrl = `http://localhost:${server.address().port}`;
+  });
+
+  test.after(() => new Promise((resolve) => server.close(resolve)));
+
+  test('listagem sem paginação usa a mesma ordem por id das páginas', async () => {
+    products.unshift(products.pop());
+    try {
+      const unpaged = await (await fetch(`${baseUrl}/api/products`)).json();
+      const paged = await (await fetch(`${baseUrl}/api/products?limit=100`)).json();
+
+      assert.deepEqual(
+        unpaged.data.map((product) => product.id),
+        ['aurora-mint-6mg', 'lunar-berry-12mg', 'solar-citrus-18mg']
+      );
+      assert.deepEqual(paged.data, unpaged.data);
+    } finally {
+      products.push(products.shift());
+    }
+  });
+
+  test('responde 400 para limit inválido', async () => {
+    const response = await fetch(`${baseUrl}/api/products?limit=0`);
+    assert.equal(response.status, 400);
+  });
+
+  test('NDJSON paginado informa total e próximo cursor nos cabeçalhos', async () => {
+    const first = await fetch(`${baseUrl}/api/products?format=ndjson&limit=2&fields=name`);
+    const lines = (await first.text()).trim().split('\n').map((line) => JSON.parse(line));
+    assert.deepEqual(lines, [
+      { id: 'aurora-mint-6mg', name: 'Aurora Mint 6mg' },
+      { id: 'lunar-berry-12mg', name: 'Lunar Berry 12mg' },
+    ]);
+    assert.equal(first.headers.get('x-total-count'), '3');
+    assert.equal(first.headers.get('x-next-cursor'), 'lunar-berry-12mg');
+
+    const last = await fetch(`${baseUrl}/api/products?format=ndjson&limit=2&after=lunar-berry-12mg`);
+    await last.text();
+    assert.equal(last.headers.get('x-next-cursor'), null);
+  });
+});
+
+test.describe('log de contatos', () => {
+  const fs = require('node:fs');
+  const os = require('node:os');
+  const path = require('node:path');
+  const { execFileSync } = require('node:child_process');
+
+  let dir;
+  let logPath;
+
+  test.beforeEach(() => {
+    dir = fs.mkdtempSync(path.join(os.tmpdir(), 'nyx-contatos-'));
+    logPath = path.join(dir, 'contatos.ndjson');
+  });
+
+  test.afterEach(() => fs.rmSync(dir, { recursive: true, force: true }));
+
+  test('replay restaura todos os registros de um log íntegro', () => {
+    fs.writeFileSync(logPath, '{"name":"a"}\n{"name":"b"}\n');
+
+    assert.deepEqual(replayContactLog(logPath), [{ name: 'a' }, { name: 'b' }]);
+    assert.equal(fs.readFileSync(logPath, 'utf8'), '{"name":"a"}\n{"name":"b"}\n');
+  });
+
+  test('arquivo inexistente não restaura nada', () => {
+    assert.deepEqual(replayContactLog(logPath), []);
+    assert.equal(fs.existsSync(logPath), false);
+  });
+
+  test('fragmento final de gravação interrompida é cortado', () => {
+    fs.writeFileSync(logPath, '{"name":"a"}\n{"name":"x","rece');
+
+    assert.deepEqual(replayContactLog(logPath), [{ name: 'a' }]);
+    assert.equal(fs.readFileSync(logPath, 'utf8'), '{"name":"a"}\n');
+  });
+
+  test('registro completo sem quebra de linha final é mantido', () => {
+    fs.writeFileSync(logPath, '{"name":"a"}\n{"name":"b"}');
+
+    assert.deepEqual(replayContactLog(logPath), [{ name: 'a' }, { name: 'b' }]);
+    assert.equal(fs.readFileSync(logPath, 'utf8'), '{"name":"a"}\n{"name":"b"}\n');
+  });
+
+  test('registro único sem quebra de linha não é truncado', () => {
+    fs.writeFileSync(logPath, '{"name":"a"}');
+
+    assert.deepEqual(replayContactLog(logPath), [{ name: 'a' }]);
+    assert.equal(fs.readFileSync(logPath, 'utf8'), '{"name":"a"}\n');
+  });
+
+  test('linha inválida no meio do log é ignorada', () => {
+    fs.writeFileSync(logPath, '{"name":"a"}\nlixo\n{"name":"b"}\n');
+
+    assert.deepEqual(replayContactLog(logPath), [{ name: 'a' }, { name: 'b' }]);
+  });
+
+  test('contato recebido após o replay é gravado em linha própria', () => {
+    fs.writeFileSync(logPath, '{"name":"a"}\n{"name":"x","rece');
+
+    // A API lê CONTACT_LOG_PATH ao ser carregada, então o cenário roda em um processo à parte.
+    const script = `
+      const { server, contactMessages } = require(${JSON.stringify(path.join(__dirname, 'server'))});
+      server.listen(0, async () => {
+        const response = await fetch('http://localhost:' + server.address().port + '/api/contact', {
+          method: 'POST',
+          body: JSON.stringify({ name: 'c', email: 'c@nyx.com', message: 'oi' }),
+        });
+        server.close(() => console.log(JSON.stringify({ status: response.status, total: contactMessages.length })));
+      });
+    `;
+    const output = execFileSync(process.execPath, ['-e', script], {
+      env: { ...process.env, CONTACT_LOG_PATH: logPath },
+      encoding: 'utf8',
+      stdio: ['ignore', 'pipe', 'ignore'],
+    });
+
+    assert.deepEqual(JSON.parse(output), { status: 201, total: 2 });
+    const lines = fs.readFileSync(logPath, 'utf8').split('\n');
+    assert.equal(lines.length, 3);
+    assert.equal(lines[2], '');
+    assert.deepEqual(JSON.parse(lines[0]), { name: 'a' });
+    assert.equal(JSON.parse(lines[1]).name, 'c');
+    assert.deepEqual(replayContactLog(logPath).map((record) => record.name), ['a', 'c']);
+  });
+});
+
+test.describe('GET /api/metrics', () => {
+  const http = require('node:http');
+  let port;
+
+  function rawRequest(method, requestPath, headers = {}) {
+    return new Promise((resolve, reject) => {
+      const request = http.request({ port, path: requestPath, method, headers }, (response) => {
+        response.resume();
+        response.on('end', () => resolve(response.statusCode));
+      });
+      request.on('error', reject);
+      request.end();
+    });
+  }
+
+  function metricValue(text, series) {
+    const line = text.split('\n').find((candidate) => candidate.startsWith(`${series} `));
+    return line === undefined ? undefined : Number(line.slice(series.length + 1));
+  }
+
+  test.before(async () => {
+    await new Promise((resolve) => server.listen(0, resolve));
+    port = server.address().port;
+  });
+
+  test.after(() => new Promise((resolve) => server.close(resolve)));
+
+  test('conta GET, 404 e preflight OPTIONS com histogramas cumulativos', async () => {
+    assert.equal(await rawRequest('GET', '/api/story'), 200);
+    assert.equal(await rawRequest('GET', '/rota-inexistente'), 404);
+    assert.equal(await rawRequest('OPTIONS', '/api/insights'), 204);
+
+    const response = await fetch(`http://localhost:${port}/api/metrics`);
+    assert.match(response.headers.get('content-type'), /^text\/plain; version=0\.0\.4/);
+    const text = await response.text();
+
+    const series = [
+      ['GET', '/api/story', 200],
+      ['GET', 'other', 404],
+      ['OPTIONS', '/api/insights', 204],
+    ];
+    series.forEach(([method, route, status]) => {
+      const labels = `method="${method}",route="${route}"`;
+      assert.equal(metricValue(text, `nyx_http_requests_total{${labels},status="${status}"}`), 1);
+
+      const buckets = text
+        .split('\n')
+        .filter((line) => line.startsWith(`nyx_http_request_duration_seconds_bucket{${labels},`))
+        .map((line) => Number(line.slice(line.lastIndexOf(' ') + 1)));
+      buckets.slice(1).forEach((count, i) => assert.ok(count >= buckets[i]));
+      assert.equal(
+        metricValue(text, `nyx_http_request_duration_seconds_bucket{${labels},le="+Inf"}`),
+        buckets[buckets.length - 1]
+      );
+      assert.equal(metricValue(text, `nyx_http_request_duration_seconds_count{${labels}}`), 1);
+      assert.equal(buckets[buckets.length - 1], 1);
+    });
+  });
+
+  test('Host malformado não derruba o servidor', async () => {
+    assert.equal(await rawRequest('OPTIONS', '/api/products', { Host: '[' }), 204);
+    assert.equal(await rawRequest('GET', '/api/products', { Host: '[' }), 400);
+    assert.equal(await rawRequest('GET', '/api/story'), 200);
+  });
+});
+
+test.describe('busca textual', () => {
+  test('ignora acentos na consulta e no índice', () => {
+    assert.deepEqual([...searchProducts('LIMAO').keys()], ['solar-citrus-18mg']);
+    assert.deepEqual([...searchProducts('cítrico').keys()], ['solar-citrus-18mg']);
+  });
+
+  test('casa termos por prefixo', () => {
+    assert.deepEqual([...searchProducts('euca').keys()], ['aurora-mint-6mg']);
+  });
+
+  test('exige que todos os termos casem', () => {
+    assert.deepEqual([...searchProducts('menta euca').keys()], ['aurora-mint-6mg']);
+    assert.equal(searchProducts('menta limao').size, 0);
+  });
+
+  test('nome pesa mais que descrição', () => {
+    const scores = searchProducts('lunar');
+    assert.equal(scores.get('lunar-berry-12mg'), 2);
+    assert.equal(searchProducts('leves').get('aurora-mint-6mg'), 1);
+  });
+
+  test('consulta sem termos não filtra', () => {
+    assert.equal(searchProducts('  - '), null);
+  });
+
+  test('busca paginada mantém a ordem de relevância', () => {
+    const scores = searchProducts('l');
+    const hits = products.filter((product) => scores.has(product.id));
+
+    const ids = [];
+    let after = null;
+    do {
+      const result = paginate(hits, { limit: 1, after }, scores);
+      ids.push(...result.page.map((product) => product.id));
+      after = result.nextCursor;
+    } while (after);
+
+    assert.deepEqual(ids, ['lunar-berry-12mg', 'aurora-mint-6mg', 'solar-citrus-18mg']);
+  });
+
+  test('cursor malformado em busca é rejeitado', () => {
+    const scores = searchProducts('l');
+    assert.throws(() => paginate(products, { limit: 1, after: 'lunar-berry-12mg' }, scores), /after/);
+  });
+
+  test.describe('GET /api/products?q=', () => {
+    let baseUrl;
+
+    test.before(async () => {
+      await new Promise((resolve) => server.listen(0, resolve));
+      baseUrl = `http://localhost:${server.address().port}`;
+    });
+
+    test.after(() => new Promise((resolve) => server.close(resolve)));
+
+    test('paginação percorre os resultados na mesma ordem da busca sem paginação', async () => {
+      const unpaged = await (await fetch(`${baseUrl}/api/products?q=l`)).json();
+
+      const ids = [];
+      let after = null;
+      do {
+        const query = after ? `&after=${encodeURIComponent(after)}` : '';
+        const body = await (await fetch(`${baseUrl}/api/products?q=l&limit=1${query}`)).json();
+        ids.push(...body.data.map((product) => product.id));
+        after = body.nextCursor;
+      } while (after);
+
+      assert.deepEqual(ids, unpaged.data.map((product) => product.id));
+      assert.deepEqual(ids, ['lunar-berry-12mg', 'aurora-mint-6mg', 'solar-citrus-18mg']);
+    });
+
+    test('responde 400 para cursor que não é de busca', async () => {
+      const response = await fetch(`${baseUrl}/api/products?q=l&after=lunar-berry-12mg`);
+      assert.equal(response.status, 400);
+    });
+  });
+});
+
+test.describe('fields', () => {
+  test('sempre inclui o id', () => {
+    assert.deepEqual(parseFields(urlWith('?fields=name,price')), ['id', 'name', 'price']);
+  });
+
+  test('aceita todos os atributos do produto', () => {
+    const all = Object.keys(products[0]).join(',');
+    assert.deepEqual(parseFields(urlWith(`?fields=${all}`)), Object.keys(products[0]));
+  });
+
+  test('campo desconhecido é rejeitado', () => {
+    assert.throws(() => parseFields(urlWith('?fields=name,foo')), /foo/);
+  });
+
+  test('lista vazia é rejeitada', () => {
+    ['?fields=', '?fields=,', '?fields=%20,%20'].forEach((query) => {
+      assert.throws(() => parseFields(urlWith(query)), /fields/);
+    });
+  });
+
+  test.describe('GET /api/products?fields=', () => {
+    let baseUrl;
+
+    test.before(async () => {
+      await new Promise((resolve) => server.listen(0, resolve));
+      baseUrl = `http://localhost:${server.address().port}`;
+    });
+
+    test.after(() => new Promise((resolve) => server.close(resolve)));
+
+    test('devolve apenas os campos pedidos', async () => {
+      const body = await (await fetch(`${baseUrl}/api/products?fields=price`)).json();
+      body.data.forEach((product) => assert.deepEqual(Object.keys(product), ['id', 'price']));
+    });
+
+    test('responde 400 para campo desconhecido', async () => {
+      const response = await fetch(`${baseUrl}/api/products?fields=name,foo`);
+      assert.equal(response.status, 400);
+      assert.match((await response.json()).error, /foo/);
+    });
+
+    test('responde 400 para lista vazia', async () => {
+      const response = await fetch(`${baseUrl}/api/products?q=lim%C3%A3o&fields=`);
+      assert.equal(response.status, 400);
+    });
+  });
+});